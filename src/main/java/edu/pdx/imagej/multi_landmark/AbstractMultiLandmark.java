@@ -0,0 +1,270 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.gui.PointRoi;
+
+import net.imagej.ops.AbstractOp;
+import org.scijava.plugin.Parameter;
+import org.scijava.app.StatusService;
+import org.scijava.ui.UIService;
+
+import mpicbg.ij.util.Util;
+import mpicbg.models.*;
+
+/** The parts of the {@link MultiLandmark} Op that are shared by all of its
+ * implementations.
+ *
+ * This class takes care of calculating the transforms between the images and
+ * picking which image everything is scaled to.  Subclasses decide what to do
+ * with the transforms.  The inputs are the ones described in {@link
+ * DefaultMultiLandmark}, and come before any inputs that subclasses add.
+ *
+ * @see MultiLandmark
+ */
+abstract class AbstractMultiLandmark extends AbstractOp
+                                     implements MultiLandmark {
+
+    // Inputs
+    @Parameter private ImagePlus[] P_images;
+    @Parameter private int P_interpolationMethod;
+    @Parameter private Class<? extends AbstractAffineModel2D<?>> P_modelType;
+    @Parameter private boolean P_stopInterpolation;
+    @Parameter private float P_discontinuityThreshold;
+    @Parameter private int P_scaleTo;
+    @Parameter private boolean P_showMatrices;
+
+    // Others
+    @Parameter private StatusService P_status;
+    @Parameter private UIService P_ui;
+
+    @Override
+    public void run()
+    {
+        int imagesSize = P_images.length;
+        ArrayList<ModelData> allData =
+            new ArrayList<>(imagesSize * (imagesSize - 1));
+        P_status.showStatus("Calculating transforms...");
+        // The index to scale to
+        // If scaling to the biggest or the smallest image, this value will
+        // change
+        int index = P_scaleTo;
+        if (P_scaleTo >= 0) {
+            for (int i = 0; i < imagesSize; ++i) {
+                if (i != P_scaleTo) {
+                    try {
+                        allData.add(new ModelData(P_images[i],
+                                                   P_images[P_scaleTo]));
+                    }
+                    catch (NotEnoughDataPointsException
+                         | IllDefinedDataPointsException e) {
+                        fail("There are not enough data points to "
+                            + "determine a transform.");
+                        return;
+                    }
+                }
+            }
+        }
+        // Either scaling to biggest or smallest
+        else {
+            // An array used to determine which image is "biggest" (or
+            // smallest).  Each element is how many other images are "smaller"
+            // (bigger) than the index
+            int[] biggestTo = new int[imagesSize];
+            for (int i = 0; i < imagesSize - 1; ++i) {
+                for (int j = i + 1; j < imagesSize; ++j) {
+                    try {
+                        ModelData data = new ModelData(P_images[i],
+                                                       P_images[j]);
+                        allData.add(data);
+                        if (data.target() == P_images[i]) ++biggestTo[i];
+                        else ++biggestTo[j];
+                    }
+                    catch (NotEnoughDataPointsException
+                         | IllDefinedDataPointsException e) {
+                        fail("There are not enough data points to "
+                            + "determine a transform.");
+                        return;
+                    }
+                }
+            }
+            int val = 0;
+            for (int i = 0; i < imagesSize; ++i) {
+                if (biggestTo[i] > val) {
+                    val = biggestTo[i];
+                    index = i;
+                }
+            }
+        }
+        P_status.showStatus("Performing transforms...");
+        try {
+            transform(allData, index);
+        }
+        catch (NoninvertibleModelException e) {
+            fail("The resulting transform was non-invertible.");
+        }
+    }
+    /** Perform the transforms and set the outputs.
+     *
+     * @param transforms Every transform that was calculated.  Only the ones
+     *                   whose target is the image at <code>index</code> are
+     *                   the ones that should be performed.
+     * @param index The index of the image that everything is scaled to.
+     * @throws NoninvertibleModelException If any of the transforms can't be
+     *                                     performed.
+     */
+    protected abstract void transform(List<ModelData> transforms, int index)
+        throws NoninvertibleModelException;
+    /** Called when the transforms can't be calculated or performed, after the
+     * user has already been told what went wrong.  The outputs should be set
+     * to <code>null</code>.
+     */
+    protected abstract void failed();
+    /** Tell the user what went wrong and then call {@link #failed}.
+     *
+     * @param message What went wrong.
+     */
+    protected void fail(String message)
+    {
+        P_ui.showDialog(message, "Error");
+        failed();
+    }
+
+    protected ImagePlus[] images() {return P_images;}
+    protected boolean stopInterpolation() {return P_stopInterpolation;}
+    protected float discontinuityThreshold()
+    {
+        return P_discontinuityThreshold;
+    }
+
+    /* This class holds the models used to perform the transformations.
+     * They store the model and the indices of the images that it transforms
+     * from and to.
+     */
+    protected class ModelData {
+        private AbstractAffineModel2D<?> M_model;
+        private ImagePlus M_source;
+        private ImagePlus M_target;
+        private Warper M_warper;
+        // This constructor initializes the model and sets M_source and M_target
+        // to the correct values.  M_source and M_target might need to be
+        // switched so that it is always scaling up.
+        public ModelData(ImagePlus i, ImagePlus j)
+            throws NotEnoughDataPointsException, IllDefinedDataPointsException
+        {
+            M_source = i;
+            M_target = j;
+            M_model = getModel();
+            double[] modelArray = new double[6];
+            M_model.toArray(modelArray);
+            double determinant = modelArray[0] * modelArray[3]
+                               - modelArray[1] * modelArray[2];
+            if ( (P_scaleTo == -1 && determinant < 1) ||
+                 (P_scaleTo == -2 && determinant > 1) ) {
+                M_model = M_model.createInverse();
+                ImagePlus temp = M_source;
+                M_source = M_target;
+                M_target = temp;
+            }
+            if (P_showMatrices) {
+                M_model.toArray(modelArray);
+                IJ.log("Transforming from " + M_source.getTitle() + " to "
+                    + M_target.getTitle() + " has the following matrix:\n"
+                    + "[" + modelArray[0] + ", " + modelArray[1] + "]\n"
+                    + "[" + modelArray[2] + ", " + modelArray[3] + "]\n"
+                    + "[" + modelArray[4] + ", " + modelArray[5] + "]");
+            }
+            M_warper = new Warper(M_model, P_interpolationMethod,
+                                  P_stopInterpolation,
+                                  P_discontinuityThreshold);
+        }
+        public ImagePlus source() {return M_source;}
+        public ImagePlus target() {return M_target;}
+        public Warper warper() {return M_warper;}
+        // Perform the transform.  If pyramid is not null, every slice is also
+        // added to it.
+        public ImagePlus transform(Pyramid pyramid)
+            throws NoninvertibleModelException
+        {
+            int stackSize
+                = Math.min(M_source.getImageStackSize(),
+                           M_target.getImageStackSize());
+            ImageStack result
+                = new ImageStack(M_target.getWidth(),
+                                 M_target.getHeight());
+            for (int i = 0; i < stackSize; ++i) {
+                if (stackSize > 1) {
+                    // Note that the status bar will reset multiple times
+                    // depending on how many ImagePluses you started with
+                    P_status.showStatus(i + 1, stackSize, "Transforming "
+                        + M_source.getTitle());
+                }
+                ImageProcessor source
+                    = M_source.getStack().getProcessor(i + 1);
+                ImageProcessor target
+                    = M_target.getProcessor().createProcessor(
+                        M_target.getWidth(),
+                        M_target.getHeight()
+                    );
+                String label = M_source.getStack().getSliceLabel(i + 1);
+                if (pyramid != null) pyramid.startSlice(target);
+                M_warper.warp(source, target, pyramid);
+                if (pyramid != null) pyramid.endSlice(label);
+                result.addSlice(label, target);
+            }
+            return new ImagePlus(M_source.getTitle() + " final",
+                                 result);
+        }
+        // Acquire the model for transforming the image from M_source to
+        // M_target
+        private AbstractAffineModel2D<?> getModel()
+            throws NotEnoughDataPointsException, IllDefinedDataPointsException
+        {
+            ArrayList<PointMatch> matches = new ArrayList<PointMatch>();
+            List<Point> sourcePoints
+                = Util.pointRoiToPoints((PointRoi)M_source.getRoi());
+            List<Point> targetPoints
+                = Util.pointRoiToPoints((PointRoi)M_target.getRoi());
+            int max = Math.min(sourcePoints.size(), targetPoints.size());
+            for (int i = 0; i < max; ++i) {
+                matches.add(new PointMatch(sourcePoints.get(i),
+                                           targetPoints.get(i)));
+            }
+            try {
+                AbstractAffineModel2D<?> model = P_modelType.getConstructor()
+                                                             .newInstance();
+                model.fit(matches);
+                return model;
+            }
+            catch (NoSuchMethodException  | InstantiationException
+                 | IllegalAccessException | InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
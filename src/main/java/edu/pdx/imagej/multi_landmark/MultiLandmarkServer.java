@@ -0,0 +1,447 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.PointRoi;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+
+import net.imagej.ops.OpService;
+import org.scijava.Context;
+import org.scijava.ui.UIService;
+
+import mpicbg.models.*;
+
+/** A long-running server that runs {@link MultiLandmark} on jobs sent over a
+ * local socket.
+ *
+ * Starting a new ImageJ for every alignment means paying for the JVM, the
+ * SciJava context, and a cold JIT every time, which often takes longer than
+ * the alignment itself.  This server creates one context and keeps it around,
+ * so that every job after the first one runs on warm code.
+ *
+ * The server only listens on the loopback address.  Its arguments are the
+ * port (default 7790), the number of worker threads (default the number of
+ * processors), and how many jobs may wait for a worker (default 16).  Each
+ * connection is read on its own lightweight thread, so idle connections that
+ * are kept open don't use up any workers.  Jobs that arrive when the queue is
+ * full are told that the server is busy.  The server runs headless, and stops
+ * accepting connections when the JVM is shut down.
+ *
+ * Each connection may send any number of jobs, one after another.  A job is
+ * a sequence of lines:
+ * <pre>
+ * image &lt;path&gt; &lt;x&gt;,&lt;y&gt; [&lt;x&gt;,&lt;y&gt; ...]
+ * image &lt;path&gt; &lt;x&gt;,&lt;y&gt; [&lt;x&gt;,&lt;y&gt; ...]
+ * interpolation none|nearest|bilinear|bicubic
+ * model translation|rigid|similarity|affine
+ * discontinuity &lt;threshold&gt;
+ * scale biggest|smallest|&lt;index&gt;
+ * output &lt;directory&gt;
+ * run
+ * </pre>
+ * There must be at least two <code>image</code> lines, one per image, each
+ * followed by that image's landmarks.  Paths may not contain whitespace,
+ * except for the output directory.  Everything else is optional and
+ * defaults to bilinear interpolation, a similarity model, no discontinuity
+ * checking, scaling to the biggest image, and saving next to the first image.
+ * <code>discontinuity</code> turns on suppressing interpolation at
+ * discontinuities with the given threshold.
+ *
+ * The response to a job is either a single line
+ * <code>error &lt;message&gt;</code>, or
+ * <pre>
+ * ok &lt;load ms&gt; &lt;align ms&gt; &lt;save ms&gt;
+ * &lt;output path&gt;
+ * ...
+ * end
+ * </pre>
+ * where the output images are saved as TIFF files.  The file names are the
+ * image titles followed by an id that is unique to the job, so that jobs never
+ * overwrite each other's results.
+ */
+public class MultiLandmarkServer {
+    public static final int DEFAULT_PORT = 7790;
+
+    public MultiLandmarkServer(Context context, int threads, int queueSize)
+    {
+        this(context.service(OpService.class),
+             new ThreadPoolExecutor(
+                 threads, threads, 0, TimeUnit.MILLISECONDS,
+                 new ArrayBlockingQueue<Runnable>(queueSize)));
+    }
+    // For the tests, which need to control the workers
+    MultiLandmarkServer(OpService ops, ThreadPoolExecutor workers)
+    {
+        M_ops = ops;
+        M_workers = workers;
+    }
+    /** Accept connections on the loopback address until {@link #close} is
+     * called or the socket fails.
+     *
+     * @param port The port to listen on.
+     * @throws IOException If the socket could not be opened or failed.
+     */
+    public void serve(int port) throws IOException
+    {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (ServerSocket server = new ServerSocket(port, 50, loopback)) {
+            M_server = server;
+            IJ.log("Multi-Image Landmark Correspondences server listening on "
+                + "port " + server.getLocalPort());
+            while (true) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                }
+                catch (SocketException e) {
+                    if (server.isClosed()) break;
+                    throw e;
+                }
+                // Reading a connection is cheap, so it gets its own thread.
+                // Only running jobs uses the workers.
+                Thread reader = new Thread(() -> handle(socket),
+                                           "Multi-Landmark connection");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+        finally {
+            M_workers.shutdown();
+        }
+    }
+    /** Stop accepting connections, making {@link #serve} return.  Jobs that
+     * have already been accepted are still finished.
+     *
+     * @throws IOException If the socket could not be closed.
+     */
+    public void close() throws IOException
+    {
+        ServerSocket server = M_server;
+        if (server != null) server.close();
+    }
+    public static void main(String[] args) throws IOException
+    {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = args.length > 1
+            ? Integer.parseInt(args[1])
+            : Runtime.getRuntime().availableProcessors();
+        int queueSize = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        // The op reports errors with dialogs, which would block a worker
+        // forever if there were a UI to show them
+        System.setProperty("java.awt.headless", "true");
+        Context context = new Context();
+        context.service(UIService.class).setHeadless(true);
+        MultiLandmarkServer server
+            = new MultiLandmarkServer(context, threads, queueSize);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            }
+            catch (IOException e) {
+                IJ.log("Could not close the server socket: " + e);
+            }
+        }));
+        try {
+            server.serve(port);
+        }
+        finally {
+            context.dispose();
+        }
+    }
+
+    private void handle(Socket socket)
+    {
+        try (Socket s = socket) {
+            handle(new BufferedReader(new InputStreamReader(
+                       s.getInputStream(), StandardCharsets.UTF_8)),
+                   writer(s));
+        }
+        catch (IOException e) {
+            IJ.log("Multi-Landmark connection failed: " + e);
+        }
+    }
+    /* Read jobs from one connection until it is closed.  Each job is handed
+     * to the workers, and the next one is not read until it is done, so the
+     * responses come back in order.
+     */
+    void handle(BufferedReader in, PrintWriter out) throws IOException
+    {
+        Job job = new Job();
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            if (line.equals("run")) {
+                Job finished = job;
+                job = new Job();
+                Future<?> running;
+                try {
+                    running = M_workers.submit(() -> run(finished, out));
+                }
+                catch (RejectedExecutionException e) {
+                    out.println("error server busy");
+                    continue;
+                }
+                try {
+                    running.get();
+                }
+                catch (ExecutionException e) {
+                    error(out, e.getCause());
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+            else {
+                try {
+                    job.read(line);
+                }
+                catch (RuntimeException e) {
+                    error(out, e);
+                    job = new Job();
+                }
+            }
+        }
+    }
+    // Tell the client that something went wrong.  Anything other than bad
+    // input is a bug, so it is logged as well.
+    private static void error(PrintWriter out, Throwable e)
+    {
+        if (e instanceof IllegalArgumentException) {
+            out.println("error " + e.getMessage());
+        }
+        else {
+            IJ.log("Multi-Landmark job failed: " + e);
+            out.println("error " + e);
+        }
+    }
+    private void run(Job job, PrintWriter out)
+    {
+        if (job.M_paths.size() < 2) {
+            throw new IllegalArgumentException(
+                "at least two images are required");
+        }
+        long start = System.nanoTime();
+        String id = M_id + "-" + M_jobs.incrementAndGet();
+        ImagePlus[] images = new ImagePlus[job.M_paths.size()];
+        for (int i = 0; i < images.length; ++i) {
+            images[i] = IJ.openImage(job.M_paths.get(i));
+            if (images[i] == null) {
+                throw new IllegalArgumentException(
+                    "could not open " + job.M_paths.get(i));
+            }
+            images[i].setRoi(job.M_landmarks.get(i));
+        }
+        if (job.M_scaleTo >= images.length) {
+            throw new IllegalArgumentException(
+                "scale index " + job.M_scaleTo + " is out of range");
+        }
+        long loaded = System.nanoTime();
+        ImagePlus[] result = (ImagePlus[])M_ops.run(
+            MultiLandmark.class,
+            images,
+            job.M_interpolation,
+            job.M_modelType,
+            job.M_stopInterpolation,
+            job.M_discontinuityThreshold,
+            job.M_scaleTo,
+            false);
+        long aligned = System.nanoTime();
+        // The op gives null both when there aren't enough landmarks and when
+        // a transform isn't invertible, and it doesn't say which
+        if (result == null) {
+            throw new IllegalArgumentException("the images could not be "
+                + "aligned; either there are not enough landmarks to "
+                + "determine a transform, or the transform was not "
+                + "invertible");
+        }
+        String directory = job.M_output != null
+            ? job.M_output
+            : new File(job.M_paths.get(0)).getAbsoluteFile().getParent();
+        List<String> paths = new ArrayList<>(result.length);
+        for (ImagePlus imp : result) {
+            String name = imp.getTitle().replaceAll("[^\\w.-]", "_");
+            String path = new File(directory, name + "-" + id + ".tif")
+                .getPath();
+            if (!new FileSaver(imp).saveAsTiff(path)) {
+                throw new IllegalArgumentException("could not save " + path);
+            }
+            paths.add(path);
+        }
+        long saved = System.nanoTime();
+        out.println("ok " + millis(start, loaded) + " "
+            + millis(loaded, aligned) + " " + millis(aligned, saved));
+        for (String path : paths) out.println(path);
+        out.println("end");
+    }
+    private static long millis(long from, long to)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(to - from);
+    }
+    private static PrintWriter writer(Socket socket) throws IOException
+    {
+        return new PrintWriter(new OutputStreamWriter(
+            socket.getOutputStream(), StandardCharsets.UTF_8), true);
+    }
+
+    /* One job, as it is being read from a connection.  The defaults are the
+     * same as the defaults of MultiLandmarkCommand.
+     */
+    static class Job {
+        public List<String> M_paths = new ArrayList<>();
+        public List<PointRoi> M_landmarks = new ArrayList<>();
+        public int M_interpolation = ImageProcessor.BILINEAR;
+        public Class<? extends AbstractAffineModel2D<?>> M_modelType
+            = SimilarityModel2D.class;
+        public boolean M_stopInterpolation = false;
+        public float M_discontinuityThreshold = 128;
+        public int M_scaleTo = -1;
+        public String M_output;
+
+        // Read one line of the job, other than "run"
+        public void read(String line)
+        {
+            String[] words = line.split("\\s+");
+            switch (words[0]) {
+                case "image":
+                    readImage(words);
+                    break;
+                case "interpolation":
+                    M_interpolation = readInterpolation(argument(words));
+                    break;
+                case "model":
+                    M_modelType = readModel(argument(words));
+                    break;
+                case "discontinuity":
+                    M_stopInterpolation = true;
+                    M_discontinuityThreshold
+                        = Float.parseFloat(argument(words));
+                    break;
+                case "scale":
+                    M_scaleTo = readScale(argument(words));
+                    break;
+                case "output":
+                    M_output = line.substring("output".length()).trim();
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                        "unknown command \"" + words[0] + "\"");
+            }
+        }
+        private void readImage(String[] words)
+        {
+            if (words.length < 3) {
+                throw new IllegalArgumentException(
+                    "an image needs a path and landmarks");
+            }
+            int size = words.length - 2;
+            float[] xs = new float[size];
+            float[] ys = new float[size];
+            for (int i = 0; i < size; ++i) {
+                String[] point = words[i + 2].split(",");
+                if (point.length != 2) {
+                    throw new IllegalArgumentException(
+                        "bad landmark \"" + words[i + 2] + "\"");
+                }
+                xs[i] = Float.parseFloat(point[0]);
+                ys[i] = Float.parseFloat(point[1]);
+            }
+            M_paths.add(words[1]);
+            M_landmarks.add(new PointRoi(xs, ys, size));
+        }
+        private static String argument(String[] words)
+        {
+            if (words.length != 2) {
+                throw new IllegalArgumentException(
+                    "\"" + words[0] + "\" takes exactly one value");
+            }
+            return words[1];
+        }
+        private static int readInterpolation(String value)
+        {
+            switch (value) {
+                case "none":     return ImageProcessor.NONE;
+                case "nearest":  return ImageProcessor.NEAREST_NEIGHBOR;
+                case "bilinear": return ImageProcessor.BILINEAR;
+                case "bicubic":  return ImageProcessor.BICUBIC;
+            }
+            throw new IllegalArgumentException(
+                "unknown interpolation \"" + value + "\"");
+        }
+        private static Class<? extends AbstractAffineModel2D<?>>
+            readModel(String value)
+        {
+            switch (value) {
+                case "translation": return TranslationModel2D.class;
+                case "rigid":       return RigidModel2D.class;
+                case "similarity":  return SimilarityModel2D.class;
+                case "affine":      return AffineModel2D.class;
+            }
+            throw new IllegalArgumentException(
+                "unknown model \"" + value + "\"");
+        }
+        private static int readScale(String value)
+        {
+            switch (value) {
+                case "biggest":  return -1;
+                case "smallest": return -2;
+            }
+            int result = Integer.parseInt(value);
+            if (result < 0) {
+                throw new IllegalArgumentException(
+                    "scale index must not be negative");
+            }
+            return result;
+        }
+    }
+
+    private final OpService M_ops;
+    private final ThreadPoolExecutor M_workers;
+    // Each output file is named after its job, so that jobs never overwrite
+    // each other, even across restarts
+    private final String M_id
+        = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong M_jobs = new AtomicLong();
+    private volatile ServerSocket M_server;
+}
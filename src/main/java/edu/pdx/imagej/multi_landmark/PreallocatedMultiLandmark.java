@@ -0,0 +1,147 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import org.scijava.ItemIO;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import mpicbg.models.NoninvertibleModelException;
+
+/** An implementation of the MultiLandmark Op that writes into stacks that you
+ * give it instead of making new images.
+ *
+ * This is meant for when you are aligning new images over and over again, such
+ * as frames coming from a camera.  After the first run on a thread, warping
+ * the images does not allocate anything, so there is no garbage to collect.
+ * Calculating the transforms from the point ROIs still allocates a little bit.
+ *
+ * The parameters are the same as {@link DefaultMultiLandmark}, with one more
+ * at the end:
+ * <ol>
+ *      <li>Output: An array of <code>ImageStack</code>, one for each image.
+ *                  Each image will be transformed into the stack with the
+ *                  same index, and the image that everything is scaled to will
+ *                  be copied into its stack.  Each stack must be the same size
+ *                  as the image that everything is scaled to, and must have at
+ *                  least as many slices as will be written.  The stacks must
+ *                  use the same kind of pixels as the image that everything is
+ *                  scaled to.
+ * </ol>
+ * The output is the same array that was passed in, or <code>null</code> if
+ * the transforms could not be calculated or the output stacks are not right
+ * for the images.  Nothing is written to any of the stacks in that case.
+ *
+ * @see MultiLandmark
+ */
+@Plugin(type = MultiLandmark.class)
+public class PreallocatedMultiLandmark extends AbstractMultiLandmark {
+
+    // Inputs and Outputs
+    @Parameter(type = ItemIO.BOTH) private ImageStack[] P_output;
+
+    @Override
+    protected void transform(List<ModelData> transforms, int index)
+        throws NoninvertibleModelException
+    {
+        // Check every output before writing anything, so that a bad stack
+        // doesn't leave the others half written
+        String problem = checkOutputs(transforms, index);
+        if (problem != null) {
+            fail(problem);
+            return;
+        }
+        ImagePlus target = images()[index];
+        for (ModelData d : transforms) {
+            if (d.target() != target) continue;
+            ImagePlus source = d.source();
+            d.warper().warp(source, P_output[indexOf(source)],
+                            stackSize(source, target));
+        }
+        ImageStack output = P_output[index];
+        for (int i = 1; i <= target.getImageStackSize(); ++i) {
+            System.arraycopy(Warper.pixels(target, i), 0,
+                             output.getPixels(i), 0,
+                             target.getWidth() * target.getHeight());
+        }
+    }
+    @Override
+    protected void failed()
+    {
+        P_output = null;
+    }
+
+    private int indexOf(ImagePlus image)
+    {
+        ImagePlus[] images = images();
+        for (int i = 0; i < images.length; ++i) {
+            if (images[i] == image) return i;
+        }
+        throw new IllegalStateException();
+    }
+    // Get what is wrong with the output stacks, or null if nothing is
+    private String checkOutputs(List<ModelData> transforms, int index)
+    {
+        ImagePlus[] images = images();
+        if (P_output == null || P_output.length != images.length) {
+            return "There must be exactly one output stack for every image.";
+        }
+        ImagePlus target = images[index];
+        Class<?> pixelType = Warper.pixels(target, 1).getClass();
+        for (int i = 0; i < P_output.length; ++i) {
+            ImageStack output = P_output[i];
+            if (output.getWidth() != target.getWidth()
+                    || output.getHeight() != target.getHeight()) {
+                return "Output stack " + i + " must be the same size as "
+                    + target.getTitle() + ".";
+            }
+            if (output.getSize() == 0
+                    || output.getPixels(1).getClass() != pixelType) {
+                return "Output stack " + i + " must have the same type of "
+                    + "pixels as " + target.getTitle() + ".";
+            }
+        }
+        for (ModelData d : transforms) {
+            if (d.target() != target) continue;
+            String problem = checkSize(indexOf(d.source()),
+                                       stackSize(d.source(), target));
+            if (problem != null) return problem;
+        }
+        return checkSize(index, target.getImageStackSize());
+    }
+    private String checkSize(int i, int stackSize)
+    {
+        if (P_output[i].getSize() < stackSize) {
+            return "Output stack " + i + " needs at least " + stackSize
+                + " slices.";
+        }
+        return null;
+    }
+    private static int stackSize(ImagePlus source, ImagePlus target)
+    {
+        return Math.min(source.getImageStackSize(),
+                        target.getImageStackSize());
+    }
+}
@@ -0,0 +1,185 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+/* This class builds downsampled copies of an image one row at a time, so that
+ * they can be made while the image itself is being made instead of reading it
+ * all again afterwards.  Each level is half the size of the one before it,
+ * with every pixel being the average of a 2x2 box in the level before it.  If
+ * a level has an odd width or height, the last column or row is dropped.
+ * The averages are passed from level to level before they are rounded, so
+ * integer images don't pick up more rounding error at every level.
+ *
+ * If stopInterpolation is set, any box that has a jump bigger than the
+ * discontinuity threshold takes its top left pixel instead of the average,
+ * just like the transform does.  Otherwise, averaging across a wrap in a phase
+ * image would make values that are on neither side of it.  This is ignored
+ * for RGB images.
+ *
+ * For each slice, call startSlice, then addRow for every row of the full
+ * image in order, and then endSlice.
+ */
+class Pyramid {
+    /* width and height are the size of the full image.  There will be at most
+     * levels levels, but there might be less if the image gets too small.
+     */
+    public Pyramid(int width, int height, int levels,
+                   boolean stopInterpolation, float discontinuityThreshold)
+    {
+        int size = 0;
+        while (size < levels && (width >> (size + 1)) > 0
+                             && (height >> (size + 1)) > 0) ++size;
+        M_width = width;
+        M_levels = new Level[size];
+        for (int i = 0; i < size; ++i) {
+            M_levels[i] = new Level(width >> (i + 1), height >> (i + 1));
+        }
+        M_stopInterpolation = stopInterpolation;
+        M_discontinuityThreshold = discontinuityThreshold;
+    }
+    public int levels() {return M_levels.length;}
+    // Start a new slice whose pixels are the same type as like
+    public void startSlice(ImageProcessor like)
+    {
+        M_color = like instanceof ColorProcessor;
+        int channels = M_color ? 3 : 1;
+        if (M_row == null || M_row.length != channels) {
+            M_row = new float[channels][M_width];
+        }
+        for (Level level : M_levels) level.start(like, channels);
+    }
+    // Add row y of image, which must be the full size
+    public void addRow(ImageProcessor image, int y)
+    {
+        if (M_levels.length == 0) return;
+        for (int x = 0; x < M_width; ++x) {
+            if (M_color) {
+                int c = image.get(x, y);
+                M_row[0][x] = (c >> 16) & 0xff;
+                M_row[1][x] = (c >> 8) & 0xff;
+                M_row[2][x] = c & 0xff;
+            }
+            else M_row[0][x] = image.getf(x, y);
+        }
+        addRow(0, M_row, y);
+    }
+    public void endSlice(String label)
+    {
+        for (Level level : M_levels) {
+            level.M_stack.addSlice(label, level.M_image);
+            level.M_image = null;
+        }
+    }
+    /* Get every level as an image.  The title of level i is title followed by
+     * how much it was shrunk.
+     */
+    public ImagePlus[] images(String title)
+    {
+        ImagePlus[] result = new ImagePlus[M_levels.length];
+        for (int i = 0; i < M_levels.length; ++i) {
+            result[i] = new ImagePlus(title + " " + (2 << i) + "x",
+                                      M_levels[i].M_stack);
+        }
+        return result;
+    }
+
+    /* Add row y of the level before the level at index i, as unrounded
+     * values.  The first row of each pair is kept until the second one comes,
+     * and then the new row is written and passed on to the next level.
+     */
+    private void addRow(int i, float[][] values, int y)
+    {
+        Level level = M_levels[i];
+        int row = y >> 1;
+        if (row >= level.M_height) return;
+        int width = level.M_width;
+        if ((y & 1) == 0) {
+            for (int c = 0; c < values.length; ++c) {
+                System.arraycopy(values[c], 0, level.M_first[c], 0, 2*width);
+            }
+            return;
+        }
+        for (int c = 0; c < values.length; ++c) {
+            float[] top = level.M_first[c];
+            float[] bottom = values[c];
+            float[] result = level.M_row[c];
+            for (int x = 0; x < width; ++x) {
+                float a = top[2*x];
+                float b = top[2*x + 1];
+                float d = bottom[2*x];
+                float e = bottom[2*x + 1];
+                if (!M_color && M_stopInterpolation
+                        && Math.max(Math.max(a, b), Math.max(d, e))
+                         - Math.min(Math.min(a, b), Math.min(d, e))
+                         > M_discontinuityThreshold) {
+                    result[x] = a;
+                }
+                else result[x] = ((a + b) + (d + e)) / 4;
+            }
+        }
+        for (int x = 0; x < width; ++x) {
+            if (M_color) {
+                int r = (int)(level.M_row[0][x] + 0.5f);
+                int g = (int)(level.M_row[1][x] + 0.5f);
+                int b = (int)(level.M_row[2][x] + 0.5f);
+                level.M_image.set(x, row, (r << 16) | (g << 8) | b);
+            }
+            else level.M_image.putPixelValue(x, row, level.M_row[0][x]);
+        }
+        if (i + 1 < M_levels.length) addRow(i + 1, level.M_row, row);
+    }
+
+    private static class Level {
+        public Level(int width, int height)
+        {
+            M_width = width;
+            M_height = height;
+        }
+        public void start(ImageProcessor like, int channels)
+        {
+            if (M_stack == null) M_stack = new ImageStack(M_width, M_height);
+            M_image = like.createProcessor(M_width, M_height);
+            if (M_row == null || M_row.length != channels) {
+                M_first = new float[channels][2 * M_width];
+                M_row = new float[channels][M_width];
+            }
+        }
+        public final int M_width;
+        public final int M_height;
+        public ImageStack M_stack;
+        public ImageProcessor M_image;
+        // The first of each pair of rows from the level before this one
+        public float[][] M_first;
+        // The last row of this level, before rounding
+        public float[][] M_row;
+    }
+
+    private final int M_width;
+    private final Level[] M_levels;
+    private final boolean M_stopInterpolation;
+    private final float M_discontinuityThreshold;
+    private float[][] M_row;
+    private boolean M_color;
+}
@@ -0,0 +1,113 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import org.scijava.ItemIO;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import mpicbg.models.NoninvertibleModelException;
+
+/** An implementation of the MultiLandmark Op that also makes downsampled
+ * copies of every result.
+ *
+ * The downsampled copies are made while the images are being transformed,
+ * so the full size results never need to be read again.  Each level is half
+ * the width and height of the level before it, with each pixel being the
+ * average of a 2x2 box.  If interpolation is stopped at discontinuities, boxes
+ * with a discontinuity in them are not averaged either.
+ *
+ * The parameters are the same as {@link DefaultMultiLandmark}, with one more
+ * at the end:
+ * <ol>
+ *      <li>Levels: An integer for how many downsampled levels to make.  If the
+ *                  images are too small for that many, fewer will be made.
+ * </ol>
+ * The output is an array of arrays of <code>ImagePlus</code>.  The first
+ * element of each array is the full size result, in the same order as the
+ * output of {@link DefaultMultiLandmark}, and element <code>i</code> is
+ * shrunk by a factor of <code>2<sup>i</sup></code>.
+ *
+ * @see MultiLandmark
+ */
+@Plugin(type = MultiLandmark.class)
+public class PyramidMultiLandmark extends AbstractMultiLandmark {
+
+    // Inputs
+    @Parameter private int P_levels;
+
+    // Outputs
+    @Parameter(type = ItemIO.OUTPUT) private ImagePlus[][] P_output;
+
+    @Override
+    protected void transform(List<ModelData> transforms, int index)
+        throws NoninvertibleModelException
+    {
+        ImagePlus[] images = images();
+        ImagePlus target = images[index];
+        P_output = new ImagePlus[images.length][];
+        int i = 0;
+        for (ModelData d : transforms) {
+            if (d.target() == target) {
+                Pyramid pyramid = pyramid(target);
+                ImagePlus result = d.transform(pyramid);
+                P_output[i++] = levels(result, pyramid);
+            }
+        }
+        ImagePlus result = target.duplicate();
+        result.setTitle(target.getTitle() + " final");
+        Pyramid pyramid = pyramid(target);
+        ImageStack stack = result.getStack();
+        for (int slice = 1; slice <= stack.getSize(); ++slice) {
+            ImageProcessor processor = stack.getProcessor(slice);
+            pyramid.startSlice(processor);
+            for (int y = 0; y < processor.getHeight(); ++y) {
+                pyramid.addRow(processor, y);
+            }
+            pyramid.endSlice(stack.getSliceLabel(slice));
+        }
+        P_output[i] = levels(result, pyramid);
+    }
+    @Override
+    protected void failed()
+    {
+        P_output = null;
+    }
+
+    private Pyramid pyramid(ImagePlus target)
+    {
+        return new Pyramid(target.getWidth(), target.getHeight(), P_levels,
+                           stopInterpolation(), discontinuityThreshold());
+    }
+    private static ImagePlus[] levels(ImagePlus result, Pyramid pyramid)
+    {
+        ImagePlus[] reduced = pyramid.images(result.getTitle());
+        ImagePlus[] levels = new ImagePlus[reduced.length + 1];
+        levels[0] = result;
+        System.arraycopy(reduced, 0, levels, 1, reduced.length);
+        return levels;
+    }
+}
@@ -0,0 +1,248 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.NoninvertibleModelException;
+
+/* This class warps one slice at a time from a source image onto a target
+ * image using a model.  Nothing is allocated while warping, so that it can be
+ * run over and over again on streaming data without making garbage.  Anything
+ * it needs is kept per thread and reused.
+ */
+class Warper {
+    public Warper(AbstractAffineModel2D<?> model, int interpolationMethod,
+                  boolean stopInterpolation, float discontinuityThreshold)
+    {
+        M_model = model;
+        M_interpolationMethod = interpolationMethod;
+        M_stopInterpolation = stopInterpolation;
+        M_discontinuityThreshold = discontinuityThreshold;
+    }
+    /* Warp source onto target.  Every pixel of target is written, so target
+     * does not need to be cleared beforehand.  The interpolation method of
+     * source is changed.
+     */
+    public void warp(ImageProcessor source, ImageProcessor target)
+        throws NoninvertibleModelException
+    {
+        warp(source, target, null);
+    }
+    /* The same as above, except that each row of target is also added to
+     * pyramid as soon as it is finished, unless pyramid is null.
+     */
+    public void warp(ImageProcessor source, ImageProcessor target,
+                     Pyramid pyramid)
+        throws NoninvertibleModelException
+    {
+        source.setInterpolationMethod(M_interpolationMethod);
+        final double[] t = SCRATCH.get().M_point;
+        final int width = target.getWidth();
+        final int height = target.getHeight();
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                t[0] = x;
+                t[1] = y;
+                M_model.applyInverseInPlace(t);
+                putPixel(source, target, t[0], t[1], x, y);
+            }
+            if (pyramid != null) pyramid.addRow(target, y);
+        }
+    }
+    /* Warp the first slices slices of source into output.  The pixel arrays
+     * are wrapped in recycled processors, so after the first call on a
+     * thread, this doesn't allocate anything.
+     */
+    public void warp(ImagePlus source, ImageStack output, int slices)
+        throws NoninvertibleModelException
+    {
+        for (int i = 1; i <= slices; ++i) {
+            warp(sourceProcessor(pixels(source, i), source.getWidth(),
+                                 source.getHeight()),
+                 targetProcessor(output.getPixels(i), output.getWidth(),
+                                 output.getHeight()));
+        }
+    }
+    // Get the pixels of a slice without making a new stack or processor, which
+    // ImagePlus.getStack() does for single images
+    public static Object pixels(ImagePlus image, int slice)
+    {
+        if (image.getImageStackSize() == 1) {
+            return image.getProcessor().getPixels();
+        }
+        return image.getImageStack().getPixels(slice);
+    }
+    /* Get processors that use pixels as their pixel arrays.  The processors
+     * from the last call on this thread are reused if they are compatible, so
+     * each one is only good until the next call of the same method on the
+     * same thread.  Note that this means that the last pixel arrays used will
+     * not be garbage collected until the next call.
+     */
+    public static ImageProcessor sourceProcessor(Object pixels, int width,
+                                                 int height)
+    {
+        Scratch scratch = SCRATCH.get();
+        scratch.M_source = recycle(scratch.M_source, pixels, width, height);
+        return scratch.M_source;
+    }
+    public static ImageProcessor targetProcessor(Object pixels, int width,
+                                                 int height)
+    {
+        Scratch scratch = SCRATCH.get();
+        scratch.M_target = recycle(scratch.M_target, pixels, width, height);
+        return scratch.M_target;
+    }
+
+    /* Puts the pixel from source at (sx, sy) on target at (tx, ty), taking
+     * into acount any interpolation complications necessary.  If (sx, sy) is
+     * outside of source, zero is put instead.
+     *
+     * source: ImageProcessor to source from (interpolation method
+     *         is already set).
+     * target: ImageProcessor to apply to
+     * sx:     Source x coordinate, can be non-integer
+     * sy:     Source y coordinate, can be non-integer
+     * tx:     Target x coordinate, must be integer
+     * ty:     Target y coordinate, must be integer
+     */
+    private void putPixel(ImageProcessor source, ImageProcessor target,
+                          double sx, double sy, int tx, int ty)
+    {
+        final int sourceWidth = source.getWidth();
+        final int sourceHeight = source.getHeight();
+        if (   sx >= 0 && (sx+0.5) < sourceWidth
+            && sy >= 0 && (sy+0.5) < sourceHeight) {
+            if (M_stopInterpolation) {
+                int xPos = (int)(sx + 0.5);
+                int yPos = (int)(sy + 0.5);
+                boolean discontinuous
+                    = M_interpolationMethod == ImageProcessor.BICUBIC
+                    ? discontinuityInBox(source, (int)sx, (int)sy)
+                    : discontinuityAround(source, xPos, yPos);
+                if (discontinuous) {
+                    target.putPixel(tx, ty, source.getPixel(xPos, yPos));
+                    return;
+                }
+            }
+            target.putPixel(tx, ty, source.getPixelInterpolated(sx, sy));
+        }
+        else target.putPixel(tx, ty, 0);
+    }
+    // Whether there are any discontinuities in any of the eight directions
+    // from (x, y), which covers everything that bilinear interpolation reads
+    private boolean discontinuityAround(ImageProcessor source, int x, int y)
+    {
+        float baseValue = source.getPixelValue(x, y);
+        for (int newX = x-1; newX <= x+1; ++newX) {
+            for (int newY = y-1; newY <= y+1; ++newY) {
+                if (newX == x && newY == y) continue;
+                if (newX < 0 || newY < 0
+                    || newX >= source.getWidth()
+                    || newY >= source.getHeight()) continue;
+                if (Math.abs(baseValue - source.getPixelValue(newX, newY))
+                        > M_discontinuityThreshold) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    /* Whether there are any discontinuities in the 4x4 box from (x-1, y-1) to
+     * (x+2, y+2), which is what bicubic interpolation reads.  The box doesn't
+     * fit in the 3x3 box around the nearest pixel, but it can't be checked by
+     * comparing everything to the nearest pixel either, because then a smooth
+     * slope would look like a discontinuity just because the box is wide.
+     * Instead, each pixel is compared to its neighbors in the same eight
+     * directions as above.
+     */
+    private boolean discontinuityInBox(ImageProcessor source, int x, int y)
+    {
+        final int xStart = Math.max(x - 1, 0);
+        final int xEnd = Math.min(x + 2, source.getWidth() - 1);
+        final int yEnd = Math.min(y + 2, source.getHeight() - 1);
+        for (int y1 = Math.max(y - 1, 0); y1 <= yEnd; ++y1) {
+            for (int x1 = xStart; x1 <= xEnd; ++x1) {
+                float value = source.getPixelValue(x1, y1);
+                // Only look right and down, so each pair is checked once
+                if (x1 < xEnd
+                        && Math.abs(value - source.getPixelValue(x1 + 1, y1))
+                           > M_discontinuityThreshold) {
+                    return true;
+                }
+                if (y1 == yEnd) continue;
+                for (int x2 = Math.max(x1 - 1, xStart);
+                        x2 <= Math.min(x1 + 1, xEnd); ++x2) {
+                    if (Math.abs(value - source.getPixelValue(x2, y1 + 1))
+                            > M_discontinuityThreshold) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+    private static ImageProcessor recycle(ImageProcessor cached,
+                                          Object pixels, int width,
+                                          int height)
+    {
+        if (cached != null
+                && cached.getWidth() == width
+                && cached.getHeight() == height
+                && cached.getPixels().getClass() == pixels.getClass()) {
+            cached.setPixels(pixels);
+            return cached;
+        }
+        if (pixels instanceof byte[]) {
+            return new ByteProcessor(width, height, (byte[])pixels, null);
+        }
+        if (pixels instanceof short[]) {
+            return new ShortProcessor(width, height, (short[])pixels, null);
+        }
+        if (pixels instanceof float[]) {
+            return new FloatProcessor(width, height, (float[])pixels, null);
+        }
+        if (pixels instanceof int[]) {
+            return new ColorProcessor(width, height, (int[])pixels);
+        }
+        throw new IllegalArgumentException("Unsupported pixel array type "
+            + pixels.getClass().getName());
+    }
+
+    private static class Scratch {
+        public final double[] M_point = new double[2];
+        public ImageProcessor M_source;
+        public ImageProcessor M_target;
+    }
+    private static final ThreadLocal<Scratch> SCRATCH
+        = ThreadLocal.withInitial(Scratch::new);
+
+    private final AbstractAffineModel2D<?> M_model;
+    private final int M_interpolationMethod;
+    private final boolean M_stopInterpolation;
+    private final float M_discontinuityThreshold;
+}
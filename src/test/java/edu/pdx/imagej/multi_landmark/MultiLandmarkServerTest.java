@@ -0,0 +1,311 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.FloatPolygon;
+import ij.process.ImageProcessor;
+
+import net.imagej.ops.OpService;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.ui.UIService;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.SimilarityModel2D;
+
+/* Checks how MultiLandmarkServer reads jobs and what it replies with.  The
+ * connections are faked with strings, so no sockets are opened.
+ */
+public class MultiLandmarkServerTest {
+    @BeforeClass
+    public static void setUp()
+    {
+        System.setProperty("java.awt.headless", "true");
+        M_context = new Context(OpService.class, StatusService.class,
+                                UIService.class);
+        M_context.service(UIService.class).setHeadless(true);
+        M_ops = M_context.service(OpService.class);
+    }
+    @AfterClass
+    public static void tearDown()
+    {
+        M_context.dispose();
+    }
+
+    @Rule public TemporaryFolder M_folder = new TemporaryFolder();
+
+    @Test
+    public void testRead()
+    {
+        MultiLandmarkServer.Job job = new MultiLandmarkServer.Job();
+        job.read("image /data/first.tif 1,2 3.5,4 5,6.25");
+        job.read("image  /data/second.tif\t7,8 9,10");
+        job.read("interpolation bicubic");
+        job.read("model rigid");
+        job.read("discontinuity 3.5");
+        job.read("scale 1");
+        job.read("output /data/aligned results");
+        assertEquals(2, job.M_paths.size());
+        assertEquals("/data/first.tif", job.M_paths.get(0));
+        assertEquals("/data/second.tif", job.M_paths.get(1));
+        FloatPolygon first = job.M_landmarks.get(0).getFloatPolygon();
+        assertEquals(3, first.npoints);
+        assertArrayEquals(new float[] {1, 3.5f, 5},
+                          Arrays.copyOf(first.xpoints, 3), 0);
+        assertArrayEquals(new float[] {2, 4, 6.25f},
+                          Arrays.copyOf(first.ypoints, 3), 0);
+        assertEquals(2, job.M_landmarks.get(1).getFloatPolygon().npoints);
+        assertEquals(ImageProcessor.BICUBIC, job.M_interpolation);
+        assertEquals(RigidModel2D.class, job.M_modelType);
+        assertTrue(job.M_stopInterpolation);
+        assertEquals(3.5f, job.M_discontinuityThreshold, 0);
+        assertEquals(1, job.M_scaleTo);
+        assertEquals("/data/aligned results", job.M_output);
+
+        job.read("interpolation none");
+        assertEquals(ImageProcessor.NONE, job.M_interpolation);
+        job.read("interpolation nearest");
+        assertEquals(ImageProcessor.NEAREST_NEIGHBOR, job.M_interpolation);
+        job.read("model affine");
+        assertEquals(AffineModel2D.class, job.M_modelType);
+        job.read("scale biggest");
+        assertEquals(-1, job.M_scaleTo);
+        job.read("scale smallest");
+        assertEquals(-2, job.M_scaleTo);
+    }
+    @Test
+    public void testDefaults()
+    {
+        // The same as MultiLandmarkCommand
+        MultiLandmarkServer.Job job = new MultiLandmarkServer.Job();
+        assertTrue(job.M_paths.isEmpty());
+        assertEquals(ImageProcessor.BILINEAR, job.M_interpolation);
+        assertEquals(SimilarityModel2D.class, job.M_modelType);
+        assertFalse(job.M_stopInterpolation);
+        assertEquals(-1, job.M_scaleTo);
+        assertNull(job.M_output);
+    }
+    @Test
+    public void testReadErrors()
+    {
+        String[][] bad = {
+            {"align everything", "unknown command \"align\""},
+            {"image /data/first.tif", "an image needs a path and landmarks"},
+            {"image /data/first.tif 1,2 3;4", "bad landmark \"3;4\""},
+            {"image /data/first.tif 1,2,3", "bad landmark \"1,2,3\""},
+            {"image /data/first.tif 1,y", null},
+            {"interpolation", "\"interpolation\" takes exactly one value"},
+            {"interpolation linear", "unknown interpolation \"linear\""},
+            {"model affine rigid", "\"model\" takes exactly one value"},
+            {"model shear", "unknown model \"shear\""},
+            {"discontinuity high", null},
+            {"scale -1", "scale index must not be negative"},
+            {"scale big", null},
+        };
+        for (String[] line : bad) {
+            MultiLandmarkServer.Job job = new MultiLandmarkServer.Job();
+            try {
+                job.read(line[0]);
+                fail("\"" + line[0] + "\" was accepted");
+            }
+            // Numbers that can't be parsed give NumberFormatException, which
+            // is also an IllegalArgumentException, so the server reports it
+            // as bad input
+            catch (IllegalArgumentException e) {
+                if (line[1] != null) {
+                    assertEquals(line[0], line[1], e.getMessage());
+                }
+            }
+            // A bad line shouldn't leave half of an image behind
+            assertTrue(line[0], job.M_paths.isEmpty());
+            assertTrue(line[0], job.M_landmarks.isEmpty());
+        }
+    }
+    @Test
+    public void testErrorReplies() throws IOException
+    {
+        String missing = new File(M_folder.getRoot(), "missing.tif")
+            .getPath();
+        String[] reply = handle(server(1, 1),
+            "bogus",
+            // The bad line throws away the job, so this one only has one
+            // image
+            "image " + missing + " 1,2 3,4",
+            "model shear",
+            "image " + missing + " 1,2 3,4",
+            "run",
+            "image " + missing + " 1,2 3,4",
+            "image " + missing + " 1,2 3,4",
+            "run");
+        assertArrayEquals(new String[] {
+            "error unknown command \"bogus\"",
+            "error unknown model \"shear\"",
+            "error at least two images are required",
+            "error could not open " + missing
+        }, reply);
+    }
+    @Test
+    public void testRun() throws IOException
+    {
+        String first = save("first", Synthetic.SOURCE_X, Synthetic.SOURCE_Y);
+        String second = save("second", Synthetic.TARGET_X,
+                             Synthetic.TARGET_Y);
+        File output = M_folder.newFolder("aligned results");
+        MultiLandmarkServer server = server(1, 1);
+        String[] job = {
+            "image " + first + " " + landmarks(Synthetic.SOURCE_X,
+                                               Synthetic.SOURCE_Y),
+            "image " + second + " " + landmarks(Synthetic.TARGET_X,
+                                                Synthetic.TARGET_Y),
+            "model affine",
+            "scale 1",
+            "output " + output.getPath(),
+            "run"
+        };
+        // Running the same job twice on one connection must give two
+        // replies, with different files
+        String[] twice = new String[job.length * 2];
+        System.arraycopy(job, 0, twice, 0, job.length);
+        System.arraycopy(job, 0, twice, job.length, job.length);
+        String[] reply = handle(server, twice);
+        assertEquals(8, reply.length);
+        for (int i = 0; i < 8; i += 4) {
+            assertTrue(reply[i], reply[i].matches("ok \\d+ \\d+ \\d+"));
+            for (int j = 1; j <= 2; ++j) {
+                File file = new File(reply[i + j]);
+                assertEquals(output, file.getParentFile());
+                assertTrue(reply[i + j], file.getName().endsWith(".tif"));
+                assertTrue(reply[i + j], file.isFile());
+            }
+            assertEquals("end", reply[i + 3]);
+        }
+        assertFalse(reply[1].equals(reply[5]));
+        assertFalse(reply[2].equals(reply[6]));
+
+        // A single landmark isn't enough for an affine model, so the op
+        // fails
+        reply = handle(server,
+            "image " + first + " 1,2",
+            "image " + second + " 3,4",
+            "model affine",
+            "output " + output.getPath(),
+            "run");
+        assertArrayEquals(new String[] {
+            "error the images could not be aligned; either there are not "
+            + "enough landmarks to determine a transform, or the transform "
+            + "was not invertible"
+        }, reply);
+    }
+    @Test
+    public void testBusy() throws Exception
+    {
+        // One worker and a queue of one, both taken up
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(1));
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < 2; ++i) {
+                workers.submit(() -> {
+                    release.await();
+                    return null;
+                });
+            }
+            String[] reply = handle(new MultiLandmarkServer(M_ops, workers),
+                                    "run", "run");
+            assertArrayEquals(new String[] {"error server busy",
+                                            "error server busy"}, reply);
+        }
+        finally {
+            release.countDown();
+            workers.shutdown();
+        }
+    }
+
+    private static MultiLandmarkServer server(int threads, int queueSize)
+    {
+        return new MultiLandmarkServer(M_ops, new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize)));
+    }
+    // Send lines on a fake connection and get the lines that come back
+    private static String[] handle(MultiLandmarkServer server,
+                                   String... lines) throws IOException
+    {
+        StringWriter result = new StringWriter();
+        server.handle(new BufferedReader(new StringReader(
+                          String.join("\n", lines) + "\n")),
+                      new PrintWriter(result, true));
+        String reply = result.toString().trim();
+        return reply.isEmpty() ? new String[0] : reply.split("\\R");
+    }
+    private String save(String name, int[] x, int[] y) throws IOException
+    {
+        ImagePlus image = Synthetic.image(name, ImagePlus.GRAY32,
+                                          Synthetic.WIDTH, Synthetic.HEIGHT,
+                                          1, Synthetic::ramp, x, y);
+        // The landmarks come from the job.  Besides, ImageJ can't open a TIFF
+        // with a point ROI in it when it is headless.
+        image.deleteRoi();
+        String path = new File(M_folder.getRoot(), name + ".tif").getPath();
+        assertTrue(new FileSaver(image).saveAsTiff(path));
+        return path;
+    }
+    private static String landmarks(int[] x, int[] y)
+    {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < x.length; ++i) {
+            if (i > 0) result.append(' ');
+            result.append(x[i]).append(',').append(y[i]);
+        }
+        return result.toString();
+    }
+
+    private static Context M_context;
+    private static OpService M_ops;
+}
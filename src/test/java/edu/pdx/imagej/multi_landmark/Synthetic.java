@@ -0,0 +1,165 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.PointRoi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import mpicbg.models.*;
+
+/* Synthetic images and landmarks for the tests.  The images are made from
+ * closed-form functions, so for most of them the tests can tell exactly what
+ * any transformed pixel should be without needing stored results.
+ */
+class Synthetic {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static final Class<? extends AbstractAffineModel2D<?>>[] MODELS
+        = new Class[] {TranslationModel2D.class, RigidModel2D.class,
+                       SimilarityModel2D.class, AffineModel2D.class};
+    // ImageProcessor.NONE is the same as NEAREST_NEIGHBOR
+    public static final int[] INTERPOLATIONS = {
+        ImageProcessor.NEAREST_NEIGHBOR, ImageProcessor.BILINEAR,
+        ImageProcessor.BICUBIC
+    };
+    public static final int[] TYPES = {
+        ImagePlus.GRAY8, ImagePlus.GRAY16, ImagePlus.GRAY32
+    };
+    public static final int WIDTH = 64;
+    public static final int HEIGHT = 64;
+
+    // The landmarks on the images that are transformed
+    public static final int[] SOURCE_X = {8, 55, 12, 50, 30};
+    public static final int[] SOURCE_Y = {9, 10, 54, 49, 28};
+    // The landmarks on the image everything is scaled to.  These are roughly
+    // the source landmarks rotated by a few degrees, scaled by about 1.1,
+    // sheared a bit, and shifted, and then rounded.  Because of the rounding,
+    // none of the models fit exactly, so the transforms all have fractional
+    // parts.
+    public static final int[] TARGET_X = {11, 62, 11, 56, 34};
+    public static final int[] TARGET_Y = {4, 10, 52, 50, 25};
+
+    // A ramp, which every interpolation method except for nearest neighbor
+    // should be able to reproduce exactly.  It fits in eight bits.
+    public static double ramp(double x, double y)
+    {
+        return 40 + 1.5 * x + 0.75 * y;
+    }
+    public static final double RAMP_SLOPE = 1.5 + 0.75;
+    // A curved surface, which no interpolation method reproduces exactly, so
+    // it can only be checked against stored results.  It fits in eight bits.
+    public static double curved(double x, double y)
+    {
+        return 60 + 0.04 * (x - 20) * (x - 20) + 0.03 * (y - 17) * (y - 17)
+            + 20 * Math.sin(x / 6) * Math.cos(y / 5);
+    }
+    // A wrapped phase image, with discontinuities every twenty pixels or so
+    public static double phase(double x, double y)
+    {
+        return wrap(0.45 * x + 0.3 * y);
+    }
+    public static final double PHASE_SLOPE = 0.45 + 0.3;
+    public static double wrap(double phase)
+    {
+        phase = phase % (2 * Math.PI);
+        if (phase >= Math.PI) phase -= 2 * Math.PI;
+        if (phase < -Math.PI) phase += 2 * Math.PI;
+        return phase;
+    }
+
+    public interface Function {
+        double at(double x, double y);
+    }
+    /* Make an image with the given type, size, and number of slices, with
+     * point ROIs at the landmarks.  Each slice is offset by ten times its
+     * index so that mixing up slices can be detected.
+     */
+    public static ImagePlus image(String title, int type, int width,
+                                  int height, int slices, Function f,
+                                  int[] landmarksX, int[] landmarksY)
+    {
+        ImageStack stack = new ImageStack(width, height);
+        for (int slice = 0; slice < slices; ++slice) {
+            ImageProcessor ip = processor(type, width, height);
+            for (int y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    ip.putPixelValue(x, y, f.at(x, y) + 10 * slice);
+                }
+            }
+            stack.addSlice("slice " + (slice + 1), ip);
+        }
+        ImagePlus result = new ImagePlus(title, stack);
+        result.setRoi(new PointRoi(landmarksX, landmarksY,
+                                   landmarksX.length));
+        return result;
+    }
+    public static ImageProcessor processor(int type, int width, int height)
+    {
+        switch (type) {
+            case ImagePlus.GRAY8:
+                return new ByteProcessor(width, height);
+            case ImagePlus.GRAY16:
+                return new ShortProcessor(width, height);
+            case ImagePlus.GRAY32:
+                return new FloatProcessor(width, height);
+        }
+        throw new IllegalArgumentException("Unsupported type " + type);
+    }
+    public static int bitDepth(int type)
+    {
+        switch (type) {
+            case ImagePlus.GRAY8:  return 8;
+            case ImagePlus.GRAY16: return 16;
+            case ImagePlus.GRAY32: return 32;
+        }
+        throw new IllegalArgumentException("Unsupported type " + type);
+    }
+    // The model that the op should end up with when transforming from the
+    // source landmarks to the target landmarks
+    public static AbstractAffineModel2D<?> model(
+        Class<? extends AbstractAffineModel2D<?>> type) throws Exception
+    {
+        List<PointMatch> matches = new ArrayList<>();
+        for (int i = 0; i < SOURCE_X.length; ++i) {
+            matches.add(new PointMatch(
+                new Point(new double[] {SOURCE_X[i], SOURCE_Y[i]}),
+                new Point(new double[] {TARGET_X[i], TARGET_Y[i]})));
+        }
+        AbstractAffineModel2D<?> result = type.getConstructor().newInstance();
+        result.fit(matches);
+        return result;
+    }
+    public static String name(int interpolation)
+    {
+        switch (interpolation) {
+            case ImageProcessor.NEAREST_NEIGHBOR: return "nearest neighbor";
+            case ImageProcessor.BILINEAR:         return "bilinear";
+            case ImageProcessor.BICUBIC:          return "bicubic";
+        }
+        return "interpolation " + interpolation;
+    }
+}
@@ -0,0 +1,229 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import net.imagej.ops.OpService;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.ui.UIService;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.AffineModel2D;
+
+/* Checks that the pixels that come out of the MultiLandmark op are what they
+ * should be, for every model, interpolation method, and pixel type.  The
+ * expected values come from the closed-form images in Synthetic, sampled at
+ * the place that the fitted model says each pixel comes from.
+ */
+public class WarpAccuracyTest {
+    @BeforeClass
+    public static void setUp()
+    {
+        System.setProperty("java.awt.headless", "true");
+        M_context = new Context(OpService.class, StatusService.class,
+                                UIService.class);
+        M_ops = M_context.service(OpService.class);
+    }
+    @AfterClass
+    public static void tearDown()
+    {
+        M_context.dispose();
+    }
+
+    @Test
+    public void testRamp() throws Exception
+    {
+        for (Class<? extends AbstractAffineModel2D<?>> model
+                : Synthetic.MODELS) {
+            for (int interpolation : Synthetic.INTERPOLATIONS) {
+                for (int type : Synthetic.TYPES) {
+                    checkRamp(model, interpolation, type);
+                }
+            }
+        }
+    }
+    @Test
+    public void testPhase() throws Exception
+    {
+        for (Class<? extends AbstractAffineModel2D<?>> model
+                : Synthetic.MODELS) {
+            for (int interpolation : Synthetic.INTERPOLATIONS) {
+                String name = model.getSimpleName() + ", "
+                    + Synthetic.name(interpolation);
+                double error = phaseError(model, interpolation, true);
+                assertTrue(name + ": phase error " + error
+                    + " with interpolation stopped at discontinuities",
+                    error <= Synthetic.PHASE_SLOPE / 2 + 1e-3);
+            }
+            // Make sure that the discontinuities really are being tested, by
+            // checking that interpolating across them is wrong
+            double error
+                = phaseError(model, ImageProcessor.BILINEAR, false);
+            assertTrue(model.getSimpleName() + ": interpolating across "
+                + "discontinuities only had an error of " + error,
+                error > 1);
+        }
+    }
+    @Test
+    public void testSmoothSlope() throws Exception
+    {
+        // No two neighboring pixels differ by more than 1.5, so nothing
+        // should count as a discontinuity, even though pixels further apart
+        // differ by a lot more than the threshold
+        ImageProcessor source = new FloatProcessor(Synthetic.WIDTH,
+                                                   Synthetic.HEIGHT);
+        for (int y = 0; y < Synthetic.HEIGHT; ++y) {
+            for (int x = 0; x < Synthetic.WIDTH; ++x) {
+                source.setf(x, y, x + 0.5f * y);
+            }
+        }
+        AffineModel2D model = new AffineModel2D();
+        model.set(1, 0, 0, 1, 0.3, 0.3);
+        for (int interpolation : Synthetic.INTERPOLATIONS) {
+            ImageProcessor expected = new FloatProcessor(Synthetic.WIDTH,
+                                                         Synthetic.HEIGHT);
+            ImageProcessor actual = new FloatProcessor(Synthetic.WIDTH,
+                                                       Synthetic.HEIGHT);
+            new Warper(model, interpolation, false, 1.6f)
+                .warp(source, expected);
+            new Warper(model, interpolation, true, 1.6f).warp(source, actual);
+            for (int y = 0; y < Synthetic.HEIGHT; ++y) {
+                for (int x = 0; x < Synthetic.WIDTH; ++x) {
+                    assertEquals(Synthetic.name(interpolation) + " at (" + x
+                        + ", " + y + ")", expected.getf(x, y),
+                        actual.getf(x, y), 0);
+                }
+            }
+        }
+    }
+
+    private void checkRamp(Class<? extends AbstractAffineModel2D<?>> type,
+                           int interpolation, int pixelType) throws Exception
+    {
+        String name = type.getSimpleName() + ", "
+            + Synthetic.name(interpolation) + ", type " + pixelType;
+        ImagePlus[] result = run(pixelType, 3, Synthetic::ramp, type,
+                                 interpolation, false);
+        assertNotNull(name, result);
+        assertEquals(name, 2, result.length);
+        ImagePlus warped = result[0];
+        assertEquals(name, 3, warped.getImageStackSize());
+        AbstractAffineModel2D<?> model = Synthetic.model(type);
+        // Nearest neighbor can be off by half a pixel in each direction.
+        // Integer types are rounded both when the source is made and when
+        // the result is written.
+        double tolerance
+            = interpolation == ImageProcessor.NEAREST_NEIGHBOR
+            ? Synthetic.RAMP_SLOPE / 2 + 1e-3 : 1e-2;
+        if (pixelType != ImagePlus.GRAY32) tolerance += 1;
+        int checked = 0;
+        for (int slice = 1; slice <= 3; ++slice) {
+            ImageProcessor ip = warped.getStack().getProcessor(slice);
+            for (int y = 0; y < Synthetic.HEIGHT; ++y) {
+                for (int x = 0; x < Synthetic.WIDTH; ++x) {
+                    double[] s = model.applyInverse(new double[] {x, y});
+                    String at = name + ", slice " + slice + " at (" + x + ", "
+                        + y + ") from (" + s[0] + ", " + s[1] + ")";
+                    if (inside(s, 2)) {
+                        double expected = Synthetic.ramp(s[0], s[1])
+                                        + 10 * (slice - 1);
+                        assertEquals(at, expected, ip.getPixelValue(x, y),
+                                     tolerance);
+                        ++checked;
+                    }
+                    else if (!inside(s, -1)) {
+                        assertEquals(at, 0, ip.getPixelValue(x, y), 0);
+                    }
+                }
+            }
+        }
+        assertTrue(name + ": only " + checked + " pixels were checked",
+                   checked > Synthetic.WIDTH * Synthetic.HEIGHT);
+        // The image everything was scaled to should be untouched
+        ImagePlus original = result[1];
+        for (int y = 0; y < Synthetic.HEIGHT; ++y) {
+            for (int x = 0; x < Synthetic.WIDTH; ++x) {
+                assertEquals(name, Synthetic.ramp(x, y),
+                             original.getProcessor().getPixelValue(x, y),
+                             pixelType == ImagePlus.GRAY32 ? 1e-4 : 0.5);
+            }
+        }
+    }
+    // Get the largest circular error of the phase image
+    private double phaseError(Class<? extends AbstractAffineModel2D<?>> type,
+                              int interpolation, boolean stop)
+        throws Exception
+    {
+        ImagePlus[] result = run(ImagePlus.GRAY32, 1, Synthetic::phase, type,
+                                 interpolation, stop);
+        assertNotNull(result);
+        ImageProcessor ip = result[0].getProcessor();
+        AbstractAffineModel2D<?> model = Synthetic.model(type);
+        double error = 0;
+        for (int y = 0; y < Synthetic.HEIGHT; ++y) {
+            for (int x = 0; x < Synthetic.WIDTH; ++x) {
+                double[] s = model.applyInverse(new double[] {x, y});
+                // Bicubic interpolation needs two pixels on each side
+                if (!inside(s, 2)) continue;
+                double difference = Synthetic.wrap(
+                    ip.getPixelValue(x, y) - Synthetic.phase(s[0], s[1]));
+                error = Math.max(error, Math.abs(difference));
+            }
+        }
+        return error;
+    }
+    private ImagePlus[] run(int pixelType, int slices, Synthetic.Function f,
+                            Class<? extends AbstractAffineModel2D<?>> type,
+                            int interpolation, boolean stop)
+    {
+        ImagePlus[] images = {
+            Synthetic.image("source", pixelType, Synthetic.WIDTH,
+                            Synthetic.HEIGHT, slices, f,
+                            Synthetic.SOURCE_X, Synthetic.SOURCE_Y),
+            Synthetic.image("target", pixelType, Synthetic.WIDTH,
+                            Synthetic.HEIGHT, slices, f,
+                            Synthetic.TARGET_X, Synthetic.TARGET_Y)
+        };
+        return (ImagePlus[])M_ops.run(MultiLandmark.class, images,
+                                      interpolation, type, stop,
+                                      (float)Math.PI, 1, false);
+    }
+    // Whether a source position is at least margin pixels inside the image
+    private static boolean inside(double[] s, double margin)
+    {
+        return s[0] >= margin && s[0] <= Synthetic.WIDTH - 1 - margin
+            && s[1] >= margin && s[1] <= Synthetic.HEIGHT - 1 - margin;
+    }
+
+    private static Context M_context;
+    private static OpService M_ops;
+}
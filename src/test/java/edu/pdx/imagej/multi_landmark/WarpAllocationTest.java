@@ -0,0 +1,103 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import org.junit.Test;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.NoninvertibleModelException;
+
+/* Checks that once everything is warmed up, the slice loop that
+ * PreallocatedMultiLandmark runs for every frame doesn't allocate anything,
+ * for every pixel type.
+ */
+public class WarpAllocationTest {
+    @Test
+    public void testNoAllocation() throws NoninvertibleModelException
+    {
+        assumeTrue(ManagementFactory.getThreadMXBean()
+                   instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean
+            = (com.sun.management.ThreadMXBean)
+              ManagementFactory.getThreadMXBean();
+        assumeTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        int size = 256;
+        // A small affine transform, like what you'd get from real landmarks
+        AffineModel2D model = new AffineModel2D();
+        model.set(1.01, 0.02, -0.015, 0.99, 1.3, -2.7);
+        Warper warper = new Warper(model, ImageProcessor.BILINEAR, true, 100f);
+        for (int type : Synthetic.TYPES) {
+            // Frames from a "camera", both single images and stacks, and the
+            // buffers that they go into, made ahead of time
+            ImagePlus[] frames = new ImagePlus[8];
+            for (int i = 0; i < frames.length; ++i) {
+                frames[i] = frames(type, size, i, i % 2 == 0 ? 1 : 3);
+            }
+            ImageStack output = frames(type, size, 0, 3).getStack();
+            // Warm up, so that the thread's scratch exists and everything is
+            // loaded
+            for (ImagePlus frame : frames) {
+                warper.warp(frame, output, frame.getImageStackSize());
+            }
+            // Whatever measuring itself allocates
+            long before = bean.getThreadAllocatedBytes(thread);
+            long overhead = bean.getThreadAllocatedBytes(thread) - before;
+
+            for (ImagePlus frame : frames) {
+                int slices = frame.getImageStackSize();
+                before = bean.getThreadAllocatedBytes(thread);
+                warper.warp(frame, output, slices);
+                long allocated
+                    = bean.getThreadAllocatedBytes(thread) - before - overhead;
+                assertTrue("Warping " + slices + " slices of type " + type
+                    + " allocated " + allocated + " bytes", allocated <= 0);
+            }
+        }
+    }
+
+    // A ramp with some wrapped discontinuities in it, shifted by i, and
+    // shifted more for each slice
+    private static ImagePlus frames(int type, int size, int i, int slices)
+    {
+        ImageStack stack = ImageStack.create(size, size, slices,
+                                             Synthetic.bitDepth(type));
+        for (int slice = 1; slice <= slices; ++slice) {
+            ImageProcessor ip = stack.getProcessor(slice);
+            for (int y = 0; y < size; ++y) {
+                for (int x = 0; x < size; ++x) {
+                    ip.setf(x, y, (x + 2*y + i + slice) % 200);
+                }
+            }
+        }
+        return new ImagePlus("frame " + i, stack);
+    }
+}
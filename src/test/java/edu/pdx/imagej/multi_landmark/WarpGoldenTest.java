@@ -0,0 +1,146 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.io.Opener;
+import ij.process.ImageProcessor;
+
+import org.junit.Test;
+
+import mpicbg.models.AffineModel2D;
+
+/* Compares warped images that can't be checked in closed form against stored
+ * results, so that any change in what Warper writes is caught, not just
+ * changes big enough to break the analytic checks in WarpAccuracyTest.
+ *
+ * The stored results are in src/test/resources, one multi-slice TIFF for each
+ * image and pixel type, with one slice for each transform and interpolation
+ * method.  They were first made with the transform loop that was originally in
+ * DefaultMultiLandmark, so anything that doesn't match is a change from how
+ * this plugin has always warped images.  If Warper is changed on purpose, run
+ * the tests with the system property multi_landmark.updateGolden set to true
+ * from the project directory to write new ones, and check that the
+ * differences make sense before committing them.
+ */
+public class WarpGoldenTest {
+    @Test
+    public void testCurved() throws Exception
+    {
+        for (int type : Synthetic.TYPES) {
+            check("curved-" + Synthetic.bitDepth(type), type,
+                  Synthetic::curved, false);
+        }
+    }
+    @Test
+    public void testPhase() throws Exception
+    {
+        check("phase", ImagePlus.GRAY32, Synthetic::phase, true);
+    }
+
+    private void check(String name, int type, Synthetic.Function f,
+                       boolean stop) throws Exception
+    {
+        ImageProcessor source = Synthetic.processor(type, SIZE, SIZE);
+        for (int y = 0; y < SIZE; ++y) {
+            for (int x = 0; x < SIZE; ++x) {
+                source.putPixelValue(x, y, f.at(x, y));
+            }
+        }
+        ImageStack result = new ImageStack(SIZE, SIZE);
+        for (int m = 0; m < MODELS.length; ++m) {
+            for (int interpolation : Synthetic.INTERPOLATIONS) {
+                AffineModel2D model = new AffineModel2D();
+                model.set(MODELS[m][0], MODELS[m][1], MODELS[m][2],
+                          MODELS[m][3], MODELS[m][4], MODELS[m][5]);
+                Warper warper = new Warper(model, interpolation, stop,
+                                           (float)Math.PI);
+                ImageProcessor target
+                    = Synthetic.processor(type, SIZE, SIZE);
+                warper.warp(source, target);
+                result.addSlice(MODEL_NAMES[m] + ", "
+                                + Synthetic.name(interpolation), target);
+            }
+        }
+        if (Boolean.getBoolean("multi_landmark.updateGolden")) {
+            File file = new File(UPDATE_DIRECTORY, name + ".tif");
+            file.getParentFile().mkdirs();
+            assertTrue(new FileSaver(new ImagePlus(name, result))
+                       .saveAsTiffStack(file.getPath()));
+            return;
+        }
+        ImageStack expected = golden(name);
+        assertEquals(name, result.getSize(), expected.getSize());
+        // The stored results are exactly what was written, so only floating
+        // point differences between machines are allowed
+        double tolerance = type == ImagePlus.GRAY32 ? 1e-4 : 0;
+        for (int slice = 1; slice <= result.getSize(); ++slice) {
+            ImageProcessor e = expected.getProcessor(slice);
+            ImageProcessor a = result.getProcessor(slice);
+            for (int y = 0; y < SIZE; ++y) {
+                for (int x = 0; x < SIZE; ++x) {
+                    assertEquals(name + ", " + result.getSliceLabel(slice)
+                        + " at (" + x + ", " + y + ")", e.getPixelValue(x, y),
+                        a.getPixelValue(x, y), tolerance);
+                }
+            }
+        }
+    }
+    private static ImageStack golden(String name) throws Exception
+    {
+        String file = "golden/" + name + ".tif";
+        try (InputStream in
+                = WarpGoldenTest.class.getResourceAsStream(file)) {
+            assertNotNull("Missing stored result " + file, in);
+            ImagePlus image = new Opener().openTiff(in, name);
+            assertNotNull("Could not read stored result " + file, image);
+            assertEquals(file, SIZE, image.getWidth());
+            assertEquals(file, SIZE, image.getHeight());
+            return image.getStack();
+        }
+    }
+
+    private static final int SIZE = 40;
+    // Fixed transforms shaped like each kind of model, so that the stored
+    // results don't depend on how the models are fitted.  Each one is m00,
+    // m10, m01, m11, m02, m12, like AffineModel2D.set.
+    private static final String[] MODEL_NAMES = {
+        "translation", "rigid", "similarity", "affine"
+    };
+    private static final double[][] MODELS = {
+        {1, 0, 0, 1, 2.37, -1.61},
+        // Seven degrees
+        {0.992546, 0.121869, -0.121869, 0.992546, -1.2, -3.4},
+        // Five degrees the other way, scaled by 1.08
+        {1.075890, -0.094128, 0.094128, 1.075890, -2.1, 1.7},
+        {1.06, 0.09, -0.07, 0.94, 2.6, -1.3}
+    };
+    private static final String UPDATE_DIRECTORY
+        = "src/test/resources/edu/pdx/imagej/multi_landmark/golden";
+}
@@ -0,0 +1,88 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import static org.junit.Assert.assertTrue;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import org.junit.Test;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.NoninvertibleModelException;
+
+/* Coarse checks on how fast Warper is.  WarpAllocationTest checks that it
+ * doesn't allocate.
+ *
+ * The throughput floors are far below what any reasonable machine does, so
+ * they only fail when the warp path gets dramatically slower.  All of them
+ * are multiplied by the system property multi_landmark.throughputScale, so
+ * that slow build machines can lower them.
+ */
+public class WarpPerformanceTest {
+    @Test
+    public void testThroughput() throws NoninvertibleModelException
+    {
+        checkThroughput("bilinear", ImageProcessor.BILINEAR, false, 5);
+        checkThroughput("bicubic", ImageProcessor.BICUBIC, false, 2);
+        checkThroughput("bilinear with discontinuities",
+                        ImageProcessor.BILINEAR, true, 2);
+    }
+
+    private void checkThroughput(String name, int interpolation,
+                                 boolean stop, double floor)
+        throws NoninvertibleModelException
+    {
+        floor *= Double.parseDouble(
+            System.getProperty("multi_landmark.throughputScale", "1"));
+        int size = 1024;
+        Warper warper = new Warper(model(), interpolation, stop, 100f);
+        ImageProcessor source = frame(size, 0);
+        ImageProcessor target = new FloatProcessor(size, size);
+        for (int i = 0; i < 3; ++i) warper.warp(source, target);
+        int runs = 5;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; ++i) warper.warp(source, target);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double megapixels = (double)runs * size * size / 1e6;
+        double speed = megapixels / seconds;
+        assertTrue(name + " warped " + speed + " megapixels per second, which "
+            + "is below the floor of " + floor, speed >= floor);
+    }
+    // A small affine transform, like what you'd get from real landmarks
+    private static AffineModel2D model()
+    {
+        AffineModel2D result = new AffineModel2D();
+        result.set(1.01, 0.02, -0.015, 0.99, 1.3, -2.7);
+        return result;
+    }
+    // A ramp with some wrapped discontinuities in it, shifted by i
+    private static ImageProcessor frame(int size, int i)
+    {
+        FloatProcessor result = new FloatProcessor(size, size);
+        for (int y = 0; y < size; ++y) {
+            for (int x = 0; x < size; ++x) {
+                result.setf(x, y, (x + 2*y + i) % 200);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,330 @@
+/* Copyright (C) 2019 Portland State University
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of version 3 of the GNU Lesser General Public License
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * For any questions regarding the license, please contact the Free Software
+ * Foundation.  For any other questions regarding this program, please contact
+ * David Cohoe at dcohoe@pdx.edu.
+ */
+
+package edu.pdx.imagej.multi_landmark;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import net.imagej.ops.OpService;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.ui.UIService;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import mpicbg.models.AffineModel2D;
+
+/* Checks that PreallocatedMultiLandmark and PyramidMultiLandmark give the
+ * same full size results as DefaultMultiLandmark.
+ */
+public class WarpVariantsTest {
+    @BeforeClass
+    public static void setUp()
+    {
+        System.setProperty("java.awt.headless", "true");
+        M_context = new Context(OpService.class, StatusService.class,
+                                UIService.class);
+        M_ops = M_context.service(OpService.class);
+    }
+    @AfterClass
+    public static void tearDown()
+    {
+        M_context.dispose();
+    }
+
+    @Test
+    public void testPreallocated()
+    {
+        for (int type : Synthetic.TYPES) {
+            ImagePlus[] images = images(type, Synthetic.WIDTH,
+                                        Synthetic.HEIGHT);
+            String name = "type " + type;
+            checkPreallocated(name + ", scaled to the last", images, 2, 2);
+            checkPreallocated(name + ", scaled to the first", images, 0, 0);
+            // The image with the target landmarks is the biggest, and putting
+            // it first means that every transform to it has to be swapped
+            ImagePlus[] reordered = {images[2], images[0], images[1]};
+            checkPreallocated(name + ", scaled to the biggest", reordered, -1,
+                              0);
+        }
+    }
+    @Test
+    public void testPreallocatedWrongOutput()
+    {
+        ImagePlus[] images = images(ImagePlus.GRAY32, Synthetic.WIDTH,
+                                    Synthetic.HEIGHT);
+        ImageStack[] output = new ImageStack[images.length];
+        for (int i = 0; i < output.length; ++i) {
+            output[i] = ImageStack.create(Synthetic.WIDTH, Synthetic.HEIGHT,
+                                          3, 32);
+            fill(output[i]);
+        }
+        // Too few slices in the last stack, and then the wrong type
+        ImageStack[][] wrong = {
+            {output[0], output[1],
+             ImageStack.create(Synthetic.WIDTH, Synthetic.HEIGHT, 2, 32)},
+            {output[0], output[1],
+             ImageStack.create(Synthetic.WIDTH, Synthetic.HEIGHT, 3, 16)}
+        };
+        for (ImageStack[] stacks : wrong) {
+            Object result = M_ops.run(
+                MultiLandmark.class, images, ImageProcessor.BILINEAR,
+                AffineModel2D.class, true, 20f, 2, false, stacks);
+            assertNull(result);
+            // Nothing should have been written to the good stacks either
+            for (int i = 0; i < 2; ++i) {
+                for (int slice = 1; slice <= 3; ++slice) {
+                    for (float f : (float[])output[i].getPixels(slice)) {
+                        assertEquals(999, f, 0);
+                    }
+                }
+            }
+        }
+    }
+    @Test
+    public void testPyramid()
+    {
+        // Odd sizes, so that the last row and column need to be dropped
+        int width = 65;
+        int height = 49;
+        for (int type : Synthetic.TYPES) {
+            ImagePlus[] images = images(type, width, height);
+            ImagePlus[] expected = (ImagePlus[])M_ops.run(
+                MultiLandmark.class, images, ImageProcessor.BICUBIC,
+                AffineModel2D.class, false, 20f, 2, false);
+            ImagePlus[][] result = (ImagePlus[][])M_ops.run(
+                MultiLandmark.class, images, ImageProcessor.BICUBIC,
+                AffineModel2D.class, false, 20f, 2, false, 3);
+            assertNotNull(expected);
+            assertNotNull(result);
+            assertEquals(expected.length, result.length);
+            for (int i = 0; i < result.length; ++i) {
+                String name = "type " + type + ", image " + i;
+                assertEquals(name, 4, result[i].length);
+                assertSameStack(name, expected[i].getStack(),
+                                result[i][0].getStack());
+                for (int level = 1; level < 4; ++level) {
+                    ImageStack coarser = result[i][level].getStack();
+                    assertEquals(name, width >> level, coarser.getWidth());
+                    assertEquals(name, height >> level, coarser.getHeight());
+                    assertEquals(name, 3, coarser.getSize());
+                    // Only the last level is rounded, so even for integer
+                    // types every level is within rounding of the true mean
+                    checkReduced(name + ", level " + level,
+                                 result[i][0].getStack(), coarser, level,
+                                 false, 0,
+                                 type == ImagePlus.GRAY32 ? 1e-3 : 0.5 + 1e-3);
+                }
+            }
+        }
+    }
+    @Test
+    public void testPhasePyramid()
+    {
+        float threshold = (float)Math.PI;
+        ImagePlus[] images = {
+            Synthetic.image("source", ImagePlus.GRAY32, Synthetic.WIDTH,
+                            Synthetic.HEIGHT, 1, Synthetic::phase,
+                            Synthetic.SOURCE_X, Synthetic.SOURCE_Y),
+            Synthetic.image("target", ImagePlus.GRAY32, Synthetic.WIDTH,
+                            Synthetic.HEIGHT, 1, Synthetic::phase,
+                            Synthetic.TARGET_X, Synthetic.TARGET_Y)
+        };
+        ImagePlus[][] result = (ImagePlus[][])M_ops.run(
+            MultiLandmark.class, images, ImageProcessor.BILINEAR,
+            AffineModel2D.class, true, threshold, 1, false, 3);
+        assertNotNull(result);
+        for (int i = 0; i < result.length; ++i) {
+            ImageStack full = result[i][0].getStack();
+            for (int level = 1; level < 4; ++level) {
+                String name = "image " + i + ", level " + level;
+                ImageStack coarser = result[i][level].getStack();
+                checkReduced(name, full, coarser, level, true, threshold,
+                             1e-4);
+                // Plain averaging would have been wrong somewhere, or else
+                // there weren't any wraps to test
+                float[][] averaged = reduce(full.getProcessor(1)
+                                                .getFloatArray(),
+                                            level, false, 0);
+                double error = 0;
+                ImageProcessor c = coarser.getProcessor(1);
+                for (int y = 0; y < c.getHeight(); ++y) {
+                    for (int x = 0; x < c.getWidth(); ++x) {
+                        double difference = Synthetic.wrap(
+                            c.getf(x, y) - averaged[x][y]);
+                        error = Math.max(error, Math.abs(difference));
+                    }
+                }
+                assertTrue(name + ": averaging across wraps only had an "
+                    + "error of " + error, error > 1);
+            }
+        }
+    }
+
+    // Two sources and the image to scale to, as stacks of three slices
+    private static ImagePlus[] images(int type, int width, int height)
+    {
+        return new ImagePlus[] {
+            Synthetic.image("first", type, width, height, 3,
+                            Synthetic::ramp,
+                            Synthetic.SOURCE_X, Synthetic.SOURCE_Y),
+            Synthetic.image("second", type, width, height, 3,
+                            (x, y) -> Synthetic.ramp(y, x),
+                            Synthetic.SOURCE_Y, Synthetic.SOURCE_X),
+            Synthetic.image("target", type, width, height, 3,
+                            Synthetic::ramp,
+                            Synthetic.TARGET_X, Synthetic.TARGET_Y)
+        };
+    }
+    /* Check that PreallocatedMultiLandmark writes the same thing as
+     * DefaultMultiLandmark.  DefaultMultiLandmark puts the sources in order
+     * and then the image everything was scaled to, which is at target, while
+     * PreallocatedMultiLandmark writes each image into the stack with the
+     * same index.
+     */
+    private static void checkPreallocated(String name, ImagePlus[] images,
+                                          int scaleTo, int target)
+    {
+        ImagePlus[] expected = (ImagePlus[])M_ops.run(
+            MultiLandmark.class, images, ImageProcessor.BILINEAR,
+            AffineModel2D.class, true, 20f, scaleTo, false);
+        assertNotNull(name, expected);
+        assertEquals(name, images.length, expected.length);
+        assertEquals(name, images[target].getTitle() + " final",
+                     expected[expected.length - 1].getTitle());
+        ImageStack[] output = new ImageStack[images.length];
+        for (int i = 0; i < output.length; ++i) {
+            output[i] = ImageStack.create(Synthetic.WIDTH, Synthetic.HEIGHT,
+                                          3, images[target].getBitDepth());
+        }
+        // Run it twice with garbage in between, to make sure that reused
+        // buffers are completely overwritten
+        for (int run = 0; run < 2; ++run) {
+            for (ImageStack stack : output) fill(stack);
+            Object result = M_ops.run(
+                MultiLandmark.class, images, ImageProcessor.BILINEAR,
+                AffineModel2D.class, true, 20f, scaleTo, false, output);
+            assertSame(name, output, result);
+            for (int i = 0; i < output.length; ++i) {
+                int e = i == target ? expected.length - 1
+                      : i < target ? i : i - 1;
+                assertSameStack(name + ", image " + i,
+                                expected[e].getStack(), output[i]);
+            }
+        }
+    }
+    private static void fill(ImageStack stack)
+    {
+        for (int i = 1; i <= stack.getSize(); ++i) {
+            Object pixels = stack.getPixels(i);
+            if (pixels instanceof byte[]) {
+                Arrays.fill((byte[])pixels, (byte)99);
+            }
+            else if (pixels instanceof short[]) {
+                Arrays.fill((short[])pixels, (short)999);
+            }
+            else Arrays.fill((float[])pixels, 999);
+        }
+    }
+    private static void assertSameStack(String name, ImageStack expected,
+                                        ImageStack actual)
+    {
+        assertEquals(name, expected.getSize(), actual.getSize());
+        for (int i = 1; i <= expected.getSize(); ++i) {
+            Object e = expected.getPixels(i);
+            Object a = actual.getPixels(i);
+            String slice = name + ", slice " + i;
+            if (e instanceof byte[]) {
+                assertArrayEquals(slice, (byte[])e, (byte[])a);
+            }
+            else if (e instanceof short[]) {
+                assertArrayEquals(slice, (short[])e, (short[])a);
+            }
+            else assertArrayEquals(slice, (float[])e, (float[])a, 0);
+        }
+    }
+    /* Check that coarser is what you get from reducing full level times,
+     * without rounding in between.
+     */
+    private static void checkReduced(String name, ImageStack full,
+                                     ImageStack coarser, int level,
+                                     boolean stop, float threshold,
+                                     double tolerance)
+    {
+        for (int i = 1; i <= coarser.getSize(); ++i) {
+            float[][] expected
+                = reduce(full.getProcessor(i).getFloatArray(), level, stop,
+                         threshold);
+            ImageProcessor c = coarser.getProcessor(i);
+            for (int y = 0; y < c.getHeight(); ++y) {
+                for (int x = 0; x < c.getWidth(); ++x) {
+                    assertEquals(name + ", slice " + i + " at (" + x + ", "
+                        + y + ")", expected[x][y], c.getf(x, y), tolerance);
+                }
+            }
+        }
+    }
+    /* Halve image level times, averaging each 2x2 box.  If stop is set, boxes
+     * with a jump bigger than threshold take their top left pixel instead.
+     */
+    private static float[][] reduce(float[][] image, int level, boolean stop,
+                                    float threshold)
+    {
+        for (int l = 0; l < level; ++l) {
+            float[][] result
+                = new float[image.length / 2][image[0].length / 2];
+            for (int x = 0; x < result.length; ++x) {
+                for (int y = 0; y < result[x].length; ++y) {
+                    float[] box = {image[2*x][2*y], image[2*x + 1][2*y],
+                                   image[2*x][2*y + 1],
+                                   image[2*x + 1][2*y + 1]};
+                    float min = box[0];
+                    float max = box[0];
+                    for (float v : box) {
+                        min = Math.min(min, v);
+                        max = Math.max(max, v);
+                    }
+                    if (stop && max - min > threshold) result[x][y] = box[0];
+                    else {
+                        result[x][y]
+                            = ((box[0] + box[1]) + (box[2] + box[3])) / 4;
+                    }
+                }
+            }
+            image = result;
+        }
+        return image;
+    }
+
+    private static Context M_context;
+    private static OpService M_ops;
+}